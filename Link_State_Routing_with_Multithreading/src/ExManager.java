@@ -1,6 +1,17 @@
 import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
 
 /**
  * The ExManager is used as a global Synchronizer of the entire network.
@@ -10,8 +21,9 @@ import java.util.concurrent.CountDownLatch;
  * 2. run the round
  * 3. prepareToFinish()
  * In the 1st phase, all nodes are instructed by the ExManager to start "listening" for messages from their neighbors.
- * This part is executed sequentially to avoid any node trying to send messages to nodes that aren't listening yet,
- * which can cause missed messages and at worst case a runtime error.
+ * The nodes bind their ports and start their listeners in parallel (see inParallel()), and the phase ends with a
+ * barrier - no node starts the round before all the listeners of all the nodes are bound, to avoid any node trying to
+ * send messages to nodes that aren't listening yet, which can cause missed messages and at worst case a runtime error.
  * In the 2nd phase, the nodes are instructed to start the actual algorithm. this implies in the case of link state
  * routing that the node will broadcast their link states to all nodes in the network.
  * The 3rd part will only be called inside the added terminate() method, for easier optimization,
@@ -23,11 +35,47 @@ import java.util.concurrent.CountDownLatch;
  * and they can print the correct output.
  * This doesn't imply that the nodes have any information on the entire network,
  * but because the algorithm is supposed to be synchronized then a synchronizer is mandatory to ensure it.
+ * Since link states are flooded reliably (see Neighbor), a lost message delays a round instead of hanging it.
+ * A link that is dead (nobody listens on the other side) fails the round on all the nodes, and start() stops the
+ * network and throws an exception that names the link, instead of waiting for the link forever - in the sharded mode
+ * as well, where the worker of the link answers that its round failed and the ExManager aborts it on the others.
+ * The duration of the last round and the number of retransmissions it took are available through
+ * getLastRoundNanos() and getRetransmissions(). The time it took to bring the network up (creating the nodes and
+ * starting their listeners) and to tear it down are available through getStartupNanos() and getTeardownNanos(),
+ * and aren't counted in the duration of any round.
+ * The nodes are created in parallel as well, and torn down in parallel by terminate().
+ * Instead of running every node on its own thread over sockets, the network can be run by a single-threaded
+ * discrete-event Simulator (see useSimulator()), which runs the same flooding logic deterministically.
+ * For networks that don't fit in a single JVM, the nodes can be split between several worker JVMs on the same
+ * machine (see useShards() and ShardWorker). In that case the ExManager doesn't create any node itself - it starts
+ * the workers, and coordinates the rounds over a control connection to every worker instead of a CountDownLatch:
+ * a round starts when the ExManager tells all the workers to start it, and ends when all of them answer that their
+ * nodes are fully updated. The ExManager reads all the control connections at once (see Shard), so a worker that
+ * crashes or fails during a round is noticed right away - the ExManager tells the other workers to abort the round,
+ * stops them, and start() throws an exception that names the crashed worker or the dead link.
+ * Between rounds, the state of all the nodes can be saved with saveSnapshot() and loaded back with restoreSnapshot()
+ * into an ExManager that was built from the same topology, and the next call to start() continues from the round
+ * after the one the snapshot was taken at.
  */
 public class ExManager {
     private final String path;
     private int numOfNodes;
     private HashMap<Integer, Node> nodes;
+    private long topologyChecksum;
+    private long lastRoundNanos;
+    private long startupNanos;
+    private long teardownNanos;
+    private boolean listening;
+    private Simulator simulator;
+    private int numShards;
+    private Shard[] shards;
+    private long shardRetransmissions;
+    private final BlockingQueue<Shard.Answer> shardAnswers = new LinkedBlockingQueue<>();
+    private static final int SHARD_START_TIMEOUT = 60_000;  // milliseconds
+    private static final int SHARD_STOP_TIMEOUT = 10_000;  // milliseconds
+    // binding a port can wait for a previous run to release it (see Neighbor.initiate()), so the parallel phases use
+    // more threads than there are cores.
+    private static final int PARALLELISM = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
     public int roundNumber;
 
     /**
@@ -39,8 +87,16 @@ public class ExManager {
         this.roundNumber = 0;
     }
 
-    /** returns the node with this id. */
-    public Node getNode(int id) { return nodes.get(id); }
+    /**
+     * returns the node with this id.
+     * in the sharded mode the node lives in a worker JVM, so this returns a copy of its current link-state database
+     * (a node without neighbors), which is enough for printing it.
+     */
+    public Node getNode(int id) {
+        if (this.shards != null)
+            return fetchNode(id);
+        return nodes.get(id);
+    }
 
     /** Returns the number of nodes in the network. */
     public int getNum_of_nodes() {
@@ -54,22 +110,62 @@ public class ExManager {
      * @param weight - new weight of link between first and second nodes
      */
     public void update_edge(int id1, int id2, double weight) {
+        if (this.shards != null) {
+            int shard1 = Shard.shardOf(id1, this.numOfNodes, this.numShards);
+            int shard2 = Shard.shardOf(id2, this.numOfNodes, this.numShards);
+            command(shard1, "UPDATE " + id1 + " " + id2 + " " + weight, "OK");
+            if (shard2 != shard1)
+                command(shard2, "UPDATE " + id1 + " " + id2 + " " + weight, "OK");
+            return;
+        }
         this.nodes.get(id1).updateWeight(id2, weight);
         this.nodes.get(id2).updateWeight(id1, weight);
     }
 
+    /**
+     * splits the nodes between the given number of worker JVMs (see ShardWorker) instead of creating them in this
+     * JVM. must be called before read_txt(), which starts the workers.
+     */
+    public void useShards(int numShards) {
+        this.numShards = numShards;
+    }
+
     /** read text from given path and create the nodes in the network. */
     public void read_txt() throws FileNotFoundException {
+        long startupStart = System.nanoTime();
+        if (this.numShards > 0) {
+            readTopology(-1, this.numShards);  // all the nodes are created by the workers
+            startShards();
+        }
+        else
+            readTopology(0, 0);
+        this.startupNanos += System.nanoTime() - startupStart;
+    }
+
+    /**
+     * reads the topology from the input file, but only creates the nodes of the given shard
+     * (or all of them if there are no shards).
+     */
+    void readTopology(int shard, int numShards) throws FileNotFoundException {
         Scanner scanner = new Scanner(new File(path));
-        this.numOfNodes = Integer.parseInt(scanner.nextLine());
+        CRC32 checksum = new CRC32();
+        String firstLine = scanner.nextLine();
+        checksum.update((firstLine.trim() + "\n").getBytes());
+        this.numOfNodes = Integer.parseInt(firstLine);
         this.nodes = new HashMap<>();
+        // the file is parsed here, and the nodes themselves (with their n*n matrices) are created in parallel below.
+        List<Integer> nodeIds = new ArrayList<>();
+        List<NeighborTable> neighborTables = new ArrayList<>();
         while(scanner.hasNextLine()) {
             String line = scanner.nextLine();
             if(line.contains("stop")) { break; }
+            checksum.update((line.trim() + "\n").getBytes());
 
             String[] node_parameters = line.split(" ");
             int nodeId = Integer.parseInt(node_parameters[0]);
-            HashMap<Integer, HashMap<String, Number>> neighborsInfo = new HashMap<>();
+            if (numShards > 0 && Shard.shardOf(nodeId, this.numOfNodes, numShards) != shard)
+                continue;
+            NeighborTable neighborsInfo = new NeighborTable(this.numOfNodes, (node_parameters.length - 1) / 4);
             for (int i = 1; i < node_parameters.length; i += 4) {
 
                 int neighborId = Integer.parseInt(node_parameters[i]);
@@ -77,30 +173,344 @@ public class ExManager {
                 int sendPort = Integer.parseInt(node_parameters[i + 2]);
                 int listenPort = Integer.parseInt(node_parameters[i + 3]);
 
-                HashMap<String, Number> nodeAttributes = new HashMap<>();
-                nodeAttributes.put("weight", weight);
-                nodeAttributes.put("send port", sendPort);
-                nodeAttributes.put("listen port", listenPort);
-                neighborsInfo.put(neighborId, nodeAttributes);
+                neighborsInfo.add(neighborId, weight, sendPort, listenPort);
             }
-            this.nodes.put(nodeId, new Node(nodeId, this.numOfNodes, neighborsInfo));
+            nodeIds.add(nodeId);
+            neighborTables.add(neighborsInfo);
         }
+        this.topologyChecksum = checksum.getValue();
+
+        Node[] created = new Node[nodeIds.size()];
+        inParallel(created.length, i -> created[i] = new Node(nodeIds.get(i), this.numOfNodes, neighborTables.get(i)));
+        for (Node node : created)
+            this.nodes.put(node.nodeId, node);
+    }
+
+    /**
+     * runs the task for every index from 0 to count - 1, on up to PARALLELISM threads, and returns only after the
+     * task finished for all of them - so this is also a barrier between the phases that use it.
+     * the indices are taken one at a time from a shared counter, so a slow task (like a port that takes a while to
+     * bind) doesn't hold back the indices after it.
+     * if the task throws, the threads stop taking new indices, and the first exception is thrown from here - errors too,
+     * since creating the nodes in parallel is exactly where an OutOfMemoryError is expected on a big topology.
+     * if the calling thread is interrupted, it still waits for all the tasks, and its interrupt status is set again
+     * before this returns.
+     */
+    static void inParallel(int count, IntConsumer task) {
+        int numWorkers = Math.min(count, PARALLELISM);
+        if (numWorkers <= 1) {
+            for (int i = 0; i < count; i++)
+                task.accept(i);
+            return;
+        }
+        AtomicInteger nextIndex = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(numWorkers);
+        for (int worker = 0; worker < numWorkers; worker++) {
+            new Thread(() -> {
+                try {
+                    for (int i = nextIndex.getAndIncrement(); i < count && failure.get() == null;
+                         i = nextIndex.getAndIncrement())
+                        task.accept(i);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "ex-manager-worker-" + worker).start();
+        }
+        // an interrupt doesn't end the wait - returning before all the tasks finished would break the barrier.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        Throwable thrown = failure.get();
+        if (thrown instanceof RuntimeException)
+            throw (RuntimeException) thrown;
+        if (thrown instanceof Error)
+            throw (Error) thrown;
+        if (thrown != null)
+            throw new RuntimeException(thrown);  // a checked exception that the task threw anyway
     }
 
-    /** 1st phase - prepares to start the link-state routing algorithm round. */
+    /** starts the worker JVMs, connects to them and waits until all of them are listening. */
+    private void startShards() {
+        this.shards = new Shard[this.numShards];
+        try (ServerSocket controlServer = new ServerSocket(0, this.numShards, InetAddress.getLoopbackAddress())) {
+            controlServer.setSoTimeout(SHARD_START_TIMEOUT);
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int shard = 0; shard < this.numShards; shard++) {
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "ShardWorker", path, String.valueOf(shard), String.valueOf(this.numShards),
+                        String.valueOf(controlServer.getLocalPort()))
+                        .inheritIO()
+                        .start();
+                this.shards[shard] = new Shard(shard, process);
+            }
+            for (int i = 0; i < this.numShards; i++) {
+                Socket control = controlServer.accept();
+                BufferedReader input = new BufferedReader(new InputStreamReader(control.getInputStream()));
+                String hello = input.readLine();
+                if (hello == null || !hello.startsWith("HELLO "))
+                    throw new IOException("a shard sent \"" + hello + "\" instead of HELLO");
+                this.shards[Integer.parseInt(hello.substring("HELLO ".length()))].connect(control, input,
+                        this.shardAnswers);
+            }
+            for (int i = 0; i < this.numShards; i++) {
+                Shard.Answer answer = nextAnswer();
+                if (answer.line == null)
+                    throw new IOException(answer.shard.describeExit());
+                if (!answer.line.equals("READY"))
+                    throw new IOException("shard " + answer.shard.index + " sent \"" + answer.line + "\" instead of READY");
+            }
+        } catch (IOException e) {
+            for (Shard shard : this.shards)
+                if (shard != null)
+                    shard.close();
+            throw new UncheckedIOException("couldn't start the shards", e);
+        }
+    }
+
+    /** sends a command to a shard and waits for its answer, which must start with the given word. */
+    private String command(int shard, String command, String answer) {
+        this.shards[shard].send(command);
+        return awaitAnswer(shard, answer);
+    }
+
+    /**
+     * waits for the next answer of a shard, which must start with the given word.
+     * outside of rounds a worker only speaks when it's spoken to, so anything else - an answer of another worker, a
+     * dead link it reported, or the end of a control connection - means the network is broken, and is thrown as an
+     * exception.
+     */
+    private String awaitAnswer(int shard, String word) {
+        Shard.Answer answer = nextAnswer();
+        if (answer.line == null)
+            throw new UncheckedIOException(new IOException(answer.shard.describeExit()));
+        if (answer.shard.index != shard || !answer.line.startsWith(word))
+            throw new UncheckedIOException(new IOException("shard " + answer.shard.index + " answered \""
+                    + answer.line + "\" instead of " + word));
+        return answer.line;
+    }
+
+    /** waits for the next line that any of the shards sent (see Shard). */
+    private Shard.Answer nextAnswer() {
+        try {
+            return this.shardAnswers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the shards", e);
+        }
+    }
+
+    /**
+     * runs a round on all the shards, and returns the number of retransmissions on their links so far.
+     * the answers are taken in the order they come, so a worker that crashes or fails the round (when a link of its
+     * nodes is dead) while another one is still running it is noticed right away: the ExManager tells all the workers
+     * that didn't answer yet to abort the round, which fails their nodes (see Node.fail()) and makes them answer,
+     * then stops all the workers and throws.
+     */
+    private long runShardRound() {
+        // all the shards are told to start before waiting for any of them, so they run the round together.
+        for (Shard shard : this.shards)
+            shard.send("START");
+        long retransmissions = 0;
+        String failure = null;
+        boolean[] answered = new boolean[this.numShards];
+        for (int remaining = this.numShards; remaining > 0; ) {
+            Shard.Answer answer = nextAnswer();
+            int index = answer.shard.index;
+            if (answer.line != null && answered[index] && !answer.line.startsWith("FAILED "))
+                continue;  // a worker that already answered can still find a dead link (see ShardWorker)
+            if (!answered[index]) {
+                answered[index] = true;  // a worker whose connection ended won't answer any more
+                remaining--;
+            }
+            if (answer.line != null && answer.line.startsWith("DONE ")) {
+                retransmissions += Long.parseLong(answer.line.substring("DONE ".length()));
+                continue;
+            }
+            if (failure == null) {
+                if (answer.line == null)
+                    failure = answer.shard.describeExit();
+                else if (answer.line.startsWith("FAILED "))
+                    failure = "shard " + index + ": " + answer.line.substring("FAILED ".length());
+                else
+                    failure = "shard " + index + " answered \"" + answer.line + "\"";
+                for (Shard shard : this.shards)
+                    if (!answered[shard.index])
+                        shard.send("ABORT " + failure);
+            }
+        }
+        if (failure != null) {
+            stopShards();  // the network can't run any more rounds, and the workers shouldn't outlive it
+            throw new IllegalStateException("round " + this.roundNumber + " failed: " + failure);
+        }
+        return retransmissions;
+    }
+
+    /**
+     * tells all the workers that are still connected to stop, and waits until they said goodbye -
+     * a worker that doesn't within SHARD_STOP_TIMEOUT is killed (see Shard.close()).
+     * answers of a round that was aborted can still come in, and are ignored.
+     */
+    private void stopShards() {
+        boolean[] stopped = new boolean[this.numShards];
+        for (Shard shard : this.shards) {
+            stopped[shard.index] = shard.isDisconnected();
+            if (!stopped[shard.index])
+                shard.send("STOP");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHARD_STOP_TIMEOUT);
+        try {
+            for (int index = 0; index < this.numShards; ) {
+                if (stopped[index]) {
+                    index++;
+                    continue;
+                }
+                Shard.Answer answer = this.shardAnswers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (answer == null)
+                    break;
+                if (answer.line == null || answer.line.equals("BYE"))
+                    stopped[answer.shard.index] = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Shard shard : this.shards)
+            shard.close();
+    }
+
+    /** returns a copy of the link-state database of a node that lives in one of the shards. */
+    private Node fetchNode(int id) {
+        Shard owner = this.shards[Shard.shardOf(id, this.numOfNodes, this.numShards)];
+        Node node = new Node(id, this.numOfNodes, new NeighborTable(this.numOfNodes, 0));
+        owner.send("GRAPH " + id);
+        for (double[] row : node.adjacencyMatrix) {
+            String[] weights = awaitAnswer(owner.index, "").split(" ");
+            for (int j = 0; j < row.length; j++)
+                row[j] = Double.parseDouble(weights[j]);
+        }
+        node.databaseChanged(this.roundNumber);
+        return node;
+    }
+
+    /**
+     * saves the link-state databases and sequence counters of all the nodes to the given path.
+     * must be called between rounds, after read_txt().
+     */
+    public void saveSnapshot(String snapshotPath) throws IOException {
+        if (this.shards != null)
+            throw new IllegalStateException("snapshots aren't supported in the sharded mode");
+        LinkStateSnapshot.write(snapshotPath, this.nodes, this.numOfNodes, this.topologyChecksum, this.roundNumber);
+    }
+
+    /**
+     * loads the state of all the nodes from a snapshot taken on the same topology (see LinkStateSnapshot),
+     * so the next call to start() runs the round after the one the snapshot was taken at.
+     * must be called after read_txt() and before the first call to start() - once the nodes ran a round, their
+     * neighbors hold link states of rounds that a restore would move back from, and would never send the restored
+     * rounds' link states (see Neighbor.transmitOverSocket()).
+     */
+    public void restoreSnapshot(String snapshotPath) throws IOException {
+        if (this.shards != null)
+            throw new IllegalStateException("snapshots aren't supported in the sharded mode");
+        if (this.listening || this.roundNumber != 0)
+            throw new IllegalStateException("a snapshot can only be restored before the first round (this network is "
+                    + "at round " + this.roundNumber + ")");
+        this.roundNumber = LinkStateSnapshot.read(snapshotPath, this.nodes, this.numOfNodes, this.topologyChecksum);
+    }
+
+    /**
+     * 1st phase - prepares to start the link-state routing algorithm round.
+     * the listeners are only brought up before the first round - the time it takes is added to the startup time.
+     * if any of them can't be brought up, the ones that were are stopped, and the exception is thrown from start().
+     */
     private CountDownLatch prepareToStart() {
         CountDownLatch finishRoundSignal = new CountDownLatch(this.numOfNodes);
         for (int id = 1; id <= this.numOfNodes; id++) {
             this.nodes.get(id).setFinishRoundSignal(finishRoundSignal);
-            this.nodes.get(id).startListening();
+            this.nodes.get(id).failureHandler = this::failRound;
+        }
+        if (!this.listening) {
+            long startupStart = System.nanoTime();
+            try {
+                inParallel(this.numOfNodes, i -> this.nodes.get(i + 1).startListening());
+            } catch (RuntimeException e) {
+                prepareToFinish();  // stops the listeners that did start, so they don't keep the program alive
+                throw e;
+            }
+            this.startupNanos += System.nanoTime() - startupStart;
+            this.listening = true;
         }
         return finishRoundSignal;
     }
 
+    /**
+     * makes all the following rounds run on a discrete-event Simulator instead of the nodes' threads and sockets.
+     * must be called after read_txt() and before the first call to start().
+     * @return - the simulator, so that the delays of the links can be configured.
+     */
+    public Simulator useSimulator() {
+        if (this.shards != null)
+            throw new IllegalStateException("the simulator can't run a sharded network");
+        this.simulator = new Simulator(this.nodes, this.numOfNodes);
+        for (Node node : this.nodes.values())
+            node.transport = this.simulator;
+        return this.simulator;
+    }
+
+    /** Returns how long the last call to start() took, in nanoseconds. */
+    public long getLastRoundNanos() {
+        return this.lastRoundNanos;
+    }
+
+    /**
+     * Returns how long it took to bring the network up, in nanoseconds - creating the nodes in read_txt() (or starting
+     * the shards), and starting their listeners before the first round.
+     */
+    public long getStartupNanos() {
+        return this.startupNanos;
+    }
+
+    /** Returns how long terminate() took, in nanoseconds. */
+    public long getTeardownNanos() {
+        return this.teardownNanos;
+    }
+
+    /** Returns the number of link states that were retransmitted by all the nodes so far. */
+    public long getRetransmissions() {
+        if (this.shards != null)
+            return this.shardRetransmissions;
+        long retransmissions = 0;
+        for (Node node : this.nodes.values())
+            retransmissions += node.retransmissions.sum();
+        return retransmissions;
+    }
+
     /** runs a single round of the routing algorithm. */
     public void start() {
+        long roundStart = System.nanoTime();
         this.roundNumber += 1;
+        if (this.simulator != null) {
+            this.simulator.runRound();
+            this.lastRoundNanos = System.nanoTime() - roundStart;
+            return;
+        }
+        if (this.shards != null) {
+            this.shardRetransmissions = runShardRound();
+            this.lastRoundNanos = System.nanoTime() - roundStart;
+            return;
+        }
         CountDownLatch finishRoundSignal = prepareToStart();
+        roundStart = System.nanoTime();  // bringing the listeners up is counted in the startup time
 
         // 2nd phase - start the round by creating thread instances of the nodes for the current round
         // and calling "start".
@@ -123,20 +533,39 @@ public class ExManager {
                 nodeThreads.get(id).join();
             } catch (InterruptedException ignored) {}
         }
+        this.lastRoundNanos = System.nanoTime() - roundStart;
+
+        for (int id = 1; id <= this.numOfNodes; id++) {
+            String failure = this.nodes.get(id).getFailure();
+            if (failure != null) {
+                prepareToFinish();  // the network can't run any more rounds, and its threads shouldn't outlive it
+                throw new IllegalStateException("round " + this.roundNumber + " failed: " + failure);
+            }
+        }
+    }
+
+    /** stops all the nodes from waiting for the current round, when a link of one of them is dead. */
+    private void failRound(String reason) {
+        for (Node node : this.nodes.values())
+            node.fail(reason);
     }
 
     /** closes all sockets and servers and such. */
     private void prepareToFinish() {
-        CountDownLatch signal = new CountDownLatch(numOfNodes);
-        for (int id = 1; id <= this.numOfNodes; id++) {
-            this.nodes.get(id).stopListening(signal);
-        }
-        try {
-            signal.await();
-        } catch (InterruptedException ignored) {}
+        // a worker of the sharded mode only has the nodes of its shard.
+        Node[] nodesToStop = this.nodes.values().toArray(new Node[0]);
+        inParallel(nodesToStop.length, i -> nodesToStop[i].stopListening());
+        // the listeners are only waited for after all the servers are closed and all the retransmission timers are
+        // stopped - until then, a listener that was waited for could keep accepting link states from other nodes.
+        inParallel(nodesToStop.length, i -> nodesToStop[i].awaitStopped());
     }
 
     public void terminate() {
-        prepareToFinish();
+        long teardownStart = System.nanoTime();
+        if (this.shards != null)
+            stopShards();
+        else
+            prepareToFinish();
+        this.teardownNanos = System.nanoTime() - teardownStart;
     }
 }
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * The forwarding table of a node: for every destination, the neighbor the node should forward to (the next hop)
+ * and the cost of the shortest path to the destination, computed from the node's link-state database
+ * (its adjacencyMatrix) with Dijkstra's algorithm.
+ * A table is never changed after it is built - the node publishes a new table when its database changes
+ * (see Node.getForwardingTable()), so any number of threads can look routes up in a table without locking,
+ * while the rounds keep running. The next hops and costs are stored in flat arrays indexed by (destination id - 1).
+ */
+public class ForwardingTable {
+
+    public static final int UNREACHABLE = -1;
+
+    private final int round;
+    private final long version;
+    private final int[] nextHops;
+    private final double[] costs;
+
+    private ForwardingTable(int round, long version, int[] nextHops, double[] costs) {
+        this.round = round;
+        this.version = version;
+        this.nextHops = nextHops;
+        this.costs = costs;
+    }
+
+    /**
+     * computes the forwarding table of the given node from its current adjacencyMatrix.
+     * @param version - the version of the node's database the table is built from (see Node.getForwardingTable())
+     * @param round - the round of the newest link state that changed the database in that version
+     */
+    public static ForwardingTable build(Node node, long version, int round) {
+        int numOfNodes = node.numOfNodes;
+        double[][] adjacencyMatrix = node.adjacencyMatrix;
+        int source = node.nodeId - 1;
+
+        double[] costs = new double[numOfNodes];
+        int[] nextHops = new int[numOfNodes];
+        boolean[] settled = new boolean[numOfNodes];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        Arrays.fill(nextHops, UNREACHABLE);
+        costs[source] = 0;
+        nextHops[source] = node.nodeId;
+
+        // the matrix is dense, so the simple O(n^2) version of Dijkstra is the fastest one here.
+        for (int i = 0; i < numOfNodes; i++) {
+            int u = -1;
+            for (int v = 0; v < numOfNodes; v++)
+                if (!settled[v] && costs[v] != Double.POSITIVE_INFINITY && (u == -1 || costs[v] < costs[u]))
+                    u = v;
+            if (u == -1)
+                break;  // the rest of the nodes are unreachable
+            settled[u] = true;
+
+            double[] row = adjacencyMatrix[u];
+            for (int v = 0; v < numOfNodes; v++) {
+                double weight = row[v];
+                if (weight < 0 || settled[v])
+                    continue;  // -1 means there is no link
+                if (costs[u] + weight < costs[v]) {
+                    costs[v] = costs[u] + weight;
+                    nextHops[v] = (u == source) ? v + 1 : nextHops[u];
+                }
+            }
+        }
+        return new ForwardingTable(round, version, nextHops, costs);
+    }
+
+    /** returns the id of the neighbor to forward to for reaching the given destination, or UNREACHABLE. */
+    public int nextHop(int destination) { return nextHops[destination - 1]; }
+
+    /** returns the cost of the shortest path to the given destination (infinity if it's unreachable). */
+    public double cost(int destination) { return costs[destination - 1]; }
+
+    /**
+     * returns the round of the newest link state that changed the database the table was built from.
+     * the table stays valid in the following rounds, as long as their link states don't change any weight.
+     */
+    public int getRound() { return round; }
+
+    /** returns the version of the node's database the table was built from. */
+    public long getVersion() { return version; }
+}
@@ -0,0 +1,41 @@
+import java.io.Serializable;
+
+/**
+ * The link state of a single node, as it is flooded through the network: the ids of the node's neighbors and the
+ * weights of the links to them, in two parallel primitive arrays (the node itself is the "Source" of the message).
+ * A node keeps a single record and refills it from its NeighborTable before every broadcast, so creating,
+ * forwarding and applying a link state doesn't allocate anything per link.
+ * This is safe because a record is only refilled at the start of the node's next round, after every node already
+ * received the previous one - so a late retransmission of the previous round's message is dropped as a duplicate
+ * by whoever receives it, no matter what it contains.
+ */
+public class LinkStateRecord implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int size;
+    private final int[] neighborIds;
+    private final double[] weights;
+
+    public LinkStateRecord(int capacity) {
+        this.size = 0;
+        this.neighborIds = new int[capacity];
+        this.weights = new double[capacity];
+    }
+
+    /** overwrites the record with the current links of the node. */
+    public void fill(NeighborTable table) {
+        for (int slot = 0; slot < table.size(); slot++) {
+            neighborIds[slot] = table.getId(slot);
+            weights[slot] = table.getWeight(slot);
+        }
+        size = table.size();
+    }
+
+    /** returns the number of links in the record. */
+    public int size() { return size; }
+
+    public int getNeighborId(int i) { return neighborIds[i]; }
+
+    public double getWeight(int i) { return weights[i]; }
+}
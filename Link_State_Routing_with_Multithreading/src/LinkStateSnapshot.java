@@ -0,0 +1,196 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class is used to checkpoint the converged link-state databases of all the nodes in the network to disk,
+ * and to load them back so that the ExManager can continue from the next round without flooding the whole topology
+ * from scratch.
+ * Between rounds all the nodes hold the same database, except for the weights of their own links that were updated
+ * since the last round (see ExManager.update_edge()). So the database is stored only once, as a list of edge weights,
+ * and every node only stores what is its own - its SequenceCounter and the weights of its links. The file grows with
+ * the number of nodes times the number of nodes (the sequence counters) plus the number of edges, instead of with
+ * a full matrix for every node.
+ * The file is a compact binary file with a fixed layout, so that every node's part of it can be memory-mapped
+ * on its own:
+ * header - magic (int), format version (int), number of nodes (int), topology checksum (long), round number (int)
+ * then, for every node id from 1 to n, a block of n ints (the node's SequenceCounter) followed by a double for every
+ * link of the node (its own weight of the link, in the order of the links in the input file),
+ * then, for every node id a from 1 to n, a double for every link (a, b) of the node with b > a - the weight of the
+ * link in the shared database.
+ * The sizes of the blocks are known from the topology, and the topology checksum is the checksum of the topology
+ * section of the input file (see ExManager.read_txt()), so a snapshot is only accepted by an ExManager that was built
+ * from the same topology.
+ */
+public class LinkStateSnapshot {
+
+    public static final int MAGIC = 0x4C534442;  // "LSDB"
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = Integer.BYTES * 3 + Long.BYTES + Integer.BYTES;
+
+    private LinkStateSnapshot() {}
+
+    /** the size in bytes of a single node's block in the file. */
+    private static long nodeBlockSize(Node node) {
+        return (long) node.numOfNodes * Integer.BYTES + (long) node.neighborsInfo.size() * Double.BYTES;
+    }
+
+    /** the number of links (id, b) of the node with b > id, which are stored in the node's part of the database. */
+    private static int databaseLinks(Node node) {
+        int count = 0;
+        for (int slot = 0; slot < node.neighborsInfo.size(); slot++)
+            if (node.neighborsInfo.getId(slot) > node.nodeId)
+                count++;
+        return count;
+    }
+
+    /**
+     * returns the node whose view of the link (a, b) is the shared database - the first node that isn't one of the
+     * link's endpoints, since an update of the link changes the weight only at its endpoints until the next round.
+     * returns null if every node is an endpoint (a network of 2 nodes), and then only the nodes' own links matter.
+     */
+    private static Node observerOf(HashMap<Integer, Node> nodes, int numOfNodes, int a, int b) {
+        for (int id = 1; id <= numOfNodes; id++)
+            if (id != a && id != b)
+                return nodes.get(id);
+        return null;
+    }
+
+    /**
+     * writes the state of all the given nodes to the file at the given path, overwriting it if it exists.
+     * must only be called between rounds, when no node is updating its state.
+     */
+    public static void write(String path,
+                             HashMap<Integer, Node> nodes,
+                             int numOfNodes,
+                             long topologyChecksum,
+                             int roundNumber) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numOfNodes).putLong(topologyChecksum).putInt(roundNumber);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+
+            long offset = HEADER_SIZE;
+            for (int id = 1; id <= numOfNodes; id++) {
+                Node node = nodes.get(id);
+                MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_WRITE, offset, nodeBlockSize(node));
+                block.asIntBuffer().put(node.SequenceCounter);
+                block.position(numOfNodes * Integer.BYTES);
+                for (int slot = 0; slot < node.neighborsInfo.size(); slot++)
+                    block.putDouble(node.neighborsInfo.getWeight(slot));
+                block.force();
+                offset += nodeBlockSize(node);
+            }
+
+            for (int id = 1; id <= numOfNodes; id++) {
+                Node node = nodes.get(id);
+                long size = (long) databaseLinks(node) * Double.BYTES;
+                if (size == 0)
+                    continue;
+                MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                for (int slot = 0; slot < node.neighborsInfo.size(); slot++) {
+                    int neighborId = node.neighborsInfo.getId(slot);
+                    if (neighborId < id)
+                        continue;
+                    Node observer = observerOf(nodes, numOfNodes, id, neighborId);
+                    block.putDouble(observer == null ? -1.0 : observer.adjacencyMatrix[id - 1][neighborId - 1]);
+                }
+                block.force();
+                offset += size;
+            }
+        }
+    }
+
+    /**
+     * reads the file at the given path into the given nodes, after validating it against the topology.
+     * every node's adjacencyMatrix is rebuilt from the shared database and the node's own links.
+     * @return the round number the snapshot was taken at.
+     */
+    public static int read(String path,
+                           HashMap<Integer, Node> nodes,
+                           int numOfNodes,
+                           long topologyChecksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException("snapshot " + path + " is too short to contain a header");
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining())
+                if (channel.read(header, header.position()) < 0)
+                    throw new EOFException("unexpected end of snapshot " + path);
+            header.flip();
+
+            if (header.getInt() != MAGIC)
+                throw new IOException(path + " is not a link-state snapshot");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported snapshot version " + version + " (expected " + VERSION + ")");
+            int snapshotNodes = header.getInt();
+            long snapshotChecksum = header.getLong();
+            if (snapshotNodes != numOfNodes || snapshotChecksum != topologyChecksum)
+                throw new IOException("snapshot " + path + " was taken on a different topology");
+            int roundNumber = header.getInt();
+
+            long expectedSize = HEADER_SIZE;
+            for (int id = 1; id <= numOfNodes; id++)
+                expectedSize += nodeBlockSize(nodes.get(id)) + (long) databaseLinks(nodes.get(id)) * Double.BYTES;
+            if (channel.size() != expectedSize)
+                throw new IOException("snapshot " + path + " has the wrong size for its topology");
+
+            // the shared database comes after all the nodes' blocks, and is needed for rebuilding any of them.
+            long offset = HEADER_SIZE;
+            for (int id = 1; id <= numOfNodes; id++)
+                offset += nodeBlockSize(nodes.get(id));
+            double[][] database = new double[numOfNodes][];
+            for (int id = 1; id <= numOfNodes; id++) {
+                database[id - 1] = new double[databaseLinks(nodes.get(id))];
+                long size = (long) database[id - 1].length * Double.BYTES;
+                if (size == 0)
+                    continue;
+                channel.map(FileChannel.MapMode.READ_ONLY, offset, size).asDoubleBuffer().get(database[id - 1]);
+                offset += size;
+            }
+
+            offset = HEADER_SIZE;
+            for (int id = 1; id <= numOfNodes; id++) {
+                Node node = nodes.get(id);
+                MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, offset, nodeBlockSize(node));
+                block.asIntBuffer().get(node.SequenceCounter);
+                block.position(numOfNodes * Integer.BYTES);
+
+                for (double[] row : node.adjacencyMatrix)
+                    Arrays.fill(row, -1.0);
+                for (int a = 1; a <= numOfNodes; a++) {
+                    NeighborTable links = nodes.get(a).neighborsInfo;
+                    int next = 0;
+                    for (int slot = 0; slot < links.size(); slot++) {
+                        int b = links.getId(slot);
+                        if (b < a)
+                            continue;
+                        double weight = database[a - 1][next++];
+                        node.adjacencyMatrix[a - 1][b - 1] = weight;
+                        node.adjacencyMatrix[b - 1][a - 1] = weight;
+                    }
+                }
+                for (int slot = 0; slot < node.neighborsInfo.size(); slot++) {
+                    int neighborId = node.neighborsInfo.getId(slot);
+                    double weight = block.getDouble();
+                    node.adjacencyMatrix[id - 1][neighborId - 1] = weight;
+                    node.adjacencyMatrix[neighborId - 1][id - 1] = weight;
+                }
+                node.restoreState(roundNumber);
+                offset += nodeBlockSize(node);
+            }
+            return roundNumber;
+        }
+    }
+}
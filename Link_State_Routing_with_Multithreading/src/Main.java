@@ -1,9 +1,20 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 import java.util.Scanner;
 
 public class Main {
+    /**
+     * pass --simulate to run the rounds on the discrete-event Simulator instead of threads and sockets,
+     * or --shards=k to split the nodes between k worker JVMs.
+     * the startup and teardown times of every network are printed to stderr.
+     */
     public static void main(String[] args) throws FileNotFoundException {
+        boolean simulate = Arrays.asList(args).contains("--simulate");
+        int numShards = 0;
+        for (String arg : args)
+            if (arg.startsWith("--shards="))
+                numShards = Integer.parseInt(arg.substring("--shards=".length()));
         String pref = "Link_State_Routing_with_Multithreading/src/tests/";
         String[] paths = {
                 pref + "input_1.txt",
@@ -13,7 +24,11 @@ public class Main {
                 pref + "input_5.txt"};
         for(String path: paths) {
             ExManager m = new ExManager(path);
+            if (numShards > 0)
+                m.useShards(numShards);
             m.read_txt();
+            if (simulate)
+                m.useSimulator();
 
             int num_of_nodes = m.getNum_of_nodes();
 
@@ -33,6 +48,9 @@ public class Main {
                 }
             }
             m.terminate();
+            // on stderr, so that the output stays just the graphs
+            System.err.printf("%s: startup %.1f ms, teardown %.1f ms%n",
+                    path, m.getStartupNanos() / 1e6, m.getTeardownNanos() / 1e6);
         }
     }
 }
@@ -1,8 +1,6 @@
 import java.util.*;
 import java.io.*;
 
-enum TYPES {BROADCAST, ACKNOWLEDGEMENT}
-
 /**
  * This class was used to abstract the data types that are handled and sent through sockets, for simplicity.
  * Each message has a type and a content fields, which are internally stored as key and value in a Pair.
@@ -16,6 +14,11 @@ public class Message implements Serializable {
         this.info = new Pair<>(type, content);
     }
 
+    /** returns the type of this message. */
+    public TYPES getType() {
+        return info.getKey();
+    }
+
     /** returns the contents of this message. */
     public HashMap<String, Serializable> getContent() {
         if (info.getKey() == TYPES.BROADCAST || info.getKey() == TYPES.ACKNOWLEDGEMENT)
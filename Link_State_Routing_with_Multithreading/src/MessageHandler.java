@@ -0,0 +1,77 @@
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * This class handles a message that arrives from some port that the node listens to.
+ * Inside this class the whole broadcasting headache is encapsulated, where access to a shared resource (the node)
+ * for forwarding broadcast messages is done. A MessageHandler receives a message
+ * and the port from which the message was sent so that it won't send it back to where it came from.
+ * It updates the node's information about the network using this message and decides whether to forward the message
+ * to all the nodes neighbors using the logic of the "flooding with sequence numbers" algorithm.
+ * Every link state is acknowledged to the neighbor it came from, even if it's old, because the neighbor
+ * will keep retransmitting it until it is acknowledged.
+ * The logic itself is in the static handle() method, so the Simulator can run it for every delivered message
+ * without creating a thread.
+ */
+class MessageHandler extends Thread implements Closeable {
+    private final Neighbor from;
+    private final Message msg;
+    final Node node;
+
+    public MessageHandler(Neighbor from, Message msg, Node node) {
+        this.from = from;
+        this.msg = msg;
+        this.node = node;
+    }
+
+    public static void updateNodeInfo(Node node, HashMap<String, Serializable> msgContent) {
+        int source = (Integer) msgContent.get("Source");
+        int sequence = (Integer) msgContent.get("Sequence");
+
+        LinkStateRecord linkStates = (LinkStateRecord) msgContent.get("LinkStates");
+        boolean changed = false;
+        for (int i = 0; i < linkStates.size(); i++) {
+            int neighborId = linkStates.getNeighborId(i);
+            double weight = linkStates.getWeight(i);
+            if (node.adjacencyMatrix[source - 1][neighborId - 1] != weight) {
+                node.adjacencyMatrix[source - 1][neighborId - 1] = weight;
+                node.adjacencyMatrix[neighborId - 1][source - 1] = weight;
+                changed = true;
+            }
+        }
+        // most link states repeat the previous round, and these don't invalidate the node's forwarding table.
+        if (changed)
+            node.databaseChanged(sequence);
+        // the sequence is updated only after the link states, so a node never sees itself up to date too early.
+        node.SequenceCounter[source - 1] = sequence;
+        node.signalUpdated();
+    }
+
+    private static void forward(Node node, Neighbor from, Message msg, int source, int sequence) {
+        for (Neighbor neighbor : node.neighbors) {
+            if (neighbor != from)
+                neighbor.transmit(msg, source, sequence);
+        }
+    }
+
+    /** handles a message that arrived at the node over the given link. */
+    public static void handle(Node node, Neighbor from, Message msg) {
+        HashMap<String, Serializable> msgContent = msg.getContent();
+        int source = (Integer) msgContent.get("Source");
+        int sequence = (Integer) msgContent.get("Sequence");
+        from.acknowledge(source, sequence);
+        if (sequence > node.SequenceCounter[source - 1]) {
+            updateNodeInfo(node, msgContent);
+            forward(node, from, msg, source, sequence);
+        }
+    }
+
+    public void run() {
+        handle(node, from, msg);
+    }
+
+    public void close() {
+        interrupt();
+    }
+}
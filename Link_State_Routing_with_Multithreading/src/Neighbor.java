@@ -14,6 +14,22 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * which helped in the optimization part and made it possible to finish example 5 without freezing my laptop...
  * Every neighbor keeps track of all the MessageHandlers it has created during it's lifetime, and terminates them
  * when it stops listening for connections (when close() is called).
+ * A neighbor is also the reliable sending side of the link: every link state sent over the link with transmit()
+ * stays pending until the neighbor acknowledges it, and is retransmitted on a timer until then.
+ * Acknowledgements are cumulative per source (acknowledging sequence s of a source acknowledges everything up to s)
+ * and are batched per link, so a single ACKNOWLEDGEMENT message can acknowledge link states of many sources.
+ * The retransmission timeout adapts to the measured round trip time of the link, like in TCP
+ * (smoothed RTT + 4 * RTT variance, doubled on every retransmission of the same link state, and without sampling
+ * retransmitted link states). The pending state is kept in arrays indexed by source id, since a link only needs
+ * to deliver the newest link state of every source.
+ * A link on which every send failed for DEAD_LINK_TIMEOUT (nobody listens on the neighbor's port) is dead - it stops
+ * retransmitting, and tells its node (see Node.linkFailed()), so that the round fails instead of waiting for it
+ * forever. A send that got through, even if it wasn't acknowledged yet, shows that the link is alive.
+ * The server socket and the state of the reliable sending side are only created when the neighbor is initiated
+ * (see Node.startListening()), so a node that runs over another Transport (like the Simulator) doesn't bind any port.
+ * The listening thread itself never sends anything - acknowledgements are handled in place and link states are
+ * handed to a MessageHandler - so that it never waits for the node's send lock while another node waits for it
+ * to accept a connection.
  */
 public class Neighbor extends Thread implements Closeable {
 
@@ -21,12 +37,34 @@ public class Neighbor extends Thread implements Closeable {
     public int listenPort;
     public int sendPort;
     private ServerSocket server;
-    private final Node node;
+    final Node node;
     private volatile boolean initiated;
     public volatile boolean receiving;
-    public volatile boolean accepting;
     private final ConcurrentLinkedQueue<MessageHandler> messageHandlers;
 
+    private static final int BIND_ATTEMPTS = 20;
+    private static final long INITIAL_TIMEOUT = 500_000_000L;  // nanoseconds
+    private static final long MIN_TIMEOUT = 50_000_000L;
+    private static final long MAX_TIMEOUT = 2_000_000_000L;
+    private static final long DEAD_LINK_TIMEOUT = 30_000_000_000L;
+
+    // sending side of the link - everything is indexed by (source id - 1) and guarded by linkLock.
+    private final Object linkLock;
+    private int[] pendingSequence;  // 0 if nothing is pending for this source
+    private Message[] pendingMessages;
+    private int[] attempts;
+    private long[] sentAt;
+    private double smoothedRtt;
+    private double rttVariance;
+    private long retransmitTimeout;
+    private long failingSince;  // when the current run of failed sends started, 0 if the last send got through
+    private boolean dead;
+
+    // acknowledgements that weren't sent back to the neighbor yet.
+    private int[] ackSequence;
+    private int[] ackSources;
+    private int ackCount;
+
     public Neighbor(int id,
                     int listenPort,
                     int sendPort,
@@ -37,12 +75,24 @@ public class Neighbor extends Thread implements Closeable {
         this.node = node;
         initiated = false;
         receiving = false;
-        accepting = false;
         messageHandlers = new ConcurrentLinkedQueue<>();
-        initiate();
+        linkLock = new Object();
     }
 
+    /** binds the server socket of the link and creates the state of its reliable sending side. */
     public void initiate() {
+        synchronized (linkLock) {
+            pendingSequence = new int[node.numOfNodes];
+            pendingMessages = new Message[node.numOfNodes];
+            attempts = new int[node.numOfNodes];
+            sentAt = new long[node.numOfNodes];
+            retransmitTimeout = INITIAL_TIMEOUT;
+            failingSince = 0;
+            dead = false;
+            ackSequence = new int[node.numOfNodes];
+            ackSources = new int[node.numOfNodes];
+            ackCount = 0;
+        }
         try {
             server = new ServerSocket();
         } catch (IOException e) {
@@ -55,12 +105,25 @@ public class Neighbor extends Thread implements Closeable {
             System.out.println("SocketException while calling server.setReuseAddress(true) at port "
                     + listenPort + ". see method setReuseAddress() description for causes.");
         }
-        try {
-            server.bind(new InetSocketAddress(listenPort));
-        } catch (IOException e) {
-            System.out.println("IOException while calling server.bind(new InetSocketAddress(port)) at port "
-                    + listenPort + ". see method bind() description for causes.");
-            e.printStackTrace();
+        // the port can still be held for a moment by a socket of a previous run, so binding is retried before
+        // giving up on it - and then the bring-up fails, since a link that never listens would make every round wait
+        // for it forever.
+        for (int attempt = 1; !server.isBound(); attempt++) {
+            try {
+                server.bind(new InetSocketAddress(listenPort));
+            } catch (IOException e) {
+                if (attempt == BIND_ATTEMPTS) {
+                    System.out.println("IOException while calling server.bind(new InetSocketAddress(port)) at port "
+                            + listenPort + ". see method bind() description for causes.");
+                    try {
+                        server.close();
+                    } catch (IOException ignored) {}
+                    throw new RuntimeException("couldn't bind port " + listenPort + ": " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(10L * attempt);
+                } catch (InterruptedException ignored) {}
+            }
         }
         initiated = true;
     }
@@ -74,21 +137,27 @@ public class Neighbor extends Thread implements Closeable {
         MessageHandler messageHandler = null;
         while (receiving && (!server.isClosed()) && server.isBound()) {
             try {
-                accepting = true;
                 Socket connection = server.accept();  // blocking
-                accepting = false;
 
-
-                input = new ObjectInputStream(connection.getInputStream());
-                new ObjectOutputStream(connection.getOutputStream());
-                Message msg = (Message) input.readObject();
-                messageHandler = new MessageHandler(sendPort, msg, node);
+                Message msg;
+                try (connection) {
+                    connection.setTcpNoDelay(true);
+                    input = new ObjectInputStream(connection.getInputStream());
+                    new ObjectOutputStream(connection.getOutputStream()).flush();
+                    msg = (Message) input.readObject();
+                }
+                if (msg.getType() == TYPES.ACKNOWLEDGEMENT) {
+                    acknowledged(msg.getContent());
+                    continue;
+                }
+                messageHandler = new MessageHandler(this, msg, node);
                 messageHandlers.add(messageHandler);
                 messageHandler.start();
             }
             catch (SocketException ignored) {}
+            catch (EOFException ignored) {}  // the sender gave up on the message, it will be retransmitted.
             catch (IOException e) {
-                if (!e.getMessage().equals("Socket closed"))
+                if (!"Socket closed".equals(e.getMessage()))
                     System.out.println("server.accept() threw " + e.getClass().getName() + " at port "
                             + listenPort + " - Exception Message: " + e.getMessage());
                 else
@@ -106,87 +175,186 @@ public class Neighbor extends Thread implements Closeable {
         }
     }
 
-    public void close() {
-        try {
-            while (!accepting)
-                Thread.onSpinWait();
-
-            for (MessageHandler messageHandler : messageHandlers)
-                messageHandler.close();
+    /**
+     * sends a link state of the given source to the neighbor, and keeps retransmitting it until the neighbor
+     * acknowledges it or a newer link state of the same source is transmitted over this link.
+     */
+    public void transmit(Message msg, int source, int sequence) {
+        if (node.transport != null)
+            node.transport.transmit(this, msg, source, sequence);
+        else
+            transmitOverSocket(msg, source, sequence);
+    }
 
-            receiving = false;
-            interrupt();
-            if (server != null && !server.isClosed())
-                server.close();
-        } catch (IOException ignored) {}
+    /** the reliable socket path of transmit(), also used by transports that send some of the links over sockets. */
+    public void transmitOverSocket(Message msg, int source, int sequence) {
+        synchronized (linkLock) {
+            if (sequence <= pendingSequence[source - 1])
+                return;  // already on its way
+            pendingSequence[source - 1] = sequence;
+            pendingMessages[source - 1] = msg;
+            attempts[source - 1] = 0;
+            sentAt[source - 1] = 0;
+        }
+        sendPending(source, sequence);
     }
 
-    public boolean isInitiated() {
-        return initiated;
+    /** (re)sends the pending link state of the source, if it is still the given sequence, and sets its timer. */
+    private void sendPending(int source, int sequence) {
+        Message msg;
+        int attempt;
+        synchronized (linkLock) {
+            if (pendingSequence[source - 1] != sequence)
+                return;
+            msg = pendingMessages[source - 1];
+            attempt = ++attempts[source - 1];
+        }
+        if (attempt > 1)
+            node.retransmissions.increment();
+
+        boolean sent = node.send(msg, sendPort);
+        if (!recordSend(sent))
+            return;
+        long timeout;
+        synchronized (linkLock) {
+            if (pendingSequence[source - 1] != sequence)
+                return;
+            if (sent && attempt == 1)
+                sentAt[source - 1] = System.nanoTime();
+            timeout = Math.min(retransmitTimeout << Math.min(attempt - 1, 16), MAX_TIMEOUT);
+        }
+        node.schedule(() -> sendPending(source, sequence), timeout);
     }
-}
 
-/**
- * This class handles a message that arrives from some port that the node listens to.
- * Inside this class the whole broadcasting headache is encapsulated, where access to a shared resource (the node)
- * for forwarding broadcast messages is done. A MessageHandler receives a message
- * and the port from which the message was sent so that it won't send it back to where it came from.
- * It updates the node's information about the network using this message and decides whether to forward the message
- * to all the nodes neighbors using the logic of the "flooding with sequence numbers" algorithm.
- */
-class MessageHandler extends Thread implements Closeable {
-    private final int fromSendPort;
-    private final Message msg;
-    private final Node node;
-
-    public MessageHandler(int fromSendPort, Message msg, Node node) {
-        this.fromSendPort = fromSendPort;
-        this.msg = msg;
-        this.node = node;
+    /**
+     * keeps track of the sends over the link, and declares it dead when all of them failed for DEAD_LINK_TIMEOUT.
+     * @return - false if the link is dead, and nothing should be sent over it anymore.
+     */
+    private boolean recordSend(boolean sent) {
+        long now = System.nanoTime();
+        synchronized (linkLock) {
+            if (dead)
+                return false;
+            if (sent) {
+                failingSince = 0;
+                return true;
+            }
+            if (failingSince == 0)
+                failingSince = now;
+            if (now - failingSince < DEAD_LINK_TIMEOUT)
+                return true;
+            dead = true;
+        }
+        node.linkFailed("the link from node " + node.nodeId + " to node " + neighborID + " (port " + sendPort
+                + ") is dead - every send over it failed for " + DEAD_LINK_TIMEOUT / 1_000_000_000L + " seconds");
+        return false;
     }
 
-    public void updateNodeInfo(HashMap<String, Serializable> msgContent) {
-        int source = (Integer) msgContent.get("Source");
-        int sequence = (Integer) msgContent.get("Sequence");
-        node.SequenceCounter[source - 1] = sequence;
-
-        HashSet<Pair<Pair<Integer, Integer>, Double>> linkStates;
-        //noinspection unchecked
-        linkStates = (HashSet<Pair<Pair<Integer, Integer>, Double>>) msgContent.get("LinkStates");
-
-        for (Pair<Pair<Integer, Integer>, Double> linkState : linkStates) {
-            int nodeID1 = linkState.getKey().getKey();
-            int nodeID2 = linkState.getKey().getValue();
-            double weight = linkState.getValue();
-            node.adjacencyMatrix[nodeID1 - 1][nodeID2 - 1] = weight;
-            node.adjacencyMatrix[nodeID2 - 1][nodeID1 - 1] = weight;
+    /** handles an ACKNOWLEDGEMENT message that arrived from the neighbor. */
+    private void acknowledged(HashMap<String, Serializable> msgContent) {
+        int[] sources = (int[]) msgContent.get("Sources");
+        int[] sequences = (int[]) msgContent.get("Sequences");
+        long now = System.nanoTime();
+        synchronized (linkLock) {
+            for (int i = 0; i < sources.length; i++) {
+                int source = sources[i];
+                if (pendingSequence[source - 1] == 0 || pendingSequence[source - 1] > sequences[i])
+                    continue;
+                // Karn's algorithm - a retransmitted link state doesn't tell which transmission was acknowledged.
+                if (attempts[source - 1] == 1 && sentAt[source - 1] != 0)
+                    sampleRtt(now - sentAt[source - 1]);
+                pendingSequence[source - 1] = 0;
+                pendingMessages[source - 1] = null;
+            }
         }
     }
 
-    private void forward(Message msg) {
-        int toPort;
-        for (Neighbor neighbor : node.neighbors.values()) {
-            toPort = neighbor.sendPort;
-            if (toPort != fromSendPort)
-                node.send(msg, toPort);
+    /** updates the retransmission timeout of the link with a new round trip time sample, like TCP does. */
+    private void sampleRtt(long rtt) {
+        if (smoothedRtt == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
         }
+        else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+        }
+        retransmitTimeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, (long) (smoothedRtt + 4 * rttVariance)));
+    }
+
+    /**
+     * queues an acknowledgement of a link state that arrived over this link. acknowledgements that are queued
+     * while a previous batch is still being sent are sent together in the next batch.
+     */
+    public void acknowledge(int source, int sequence) {
+        if (node.transport != null)
+            node.transport.acknowledge(this, source, sequence);
+        else
+            acknowledgeOverSocket(source, sequence);
     }
 
-    private void floodingWithSequenceNumbers() {
-        HashMap<String, Serializable> msgContent = msg.getContent();
-        int source = (Integer) msgContent.get("Source");
-        int sequence = (Integer) msgContent.get("Sequence");
-        if (sequence > node.SequenceCounter[source - 1]) {
-            updateNodeInfo(msgContent);
-            forward(msg);
+    /** the socket path of acknowledge(), also used by transports that send some of the links over sockets. */
+    public void acknowledgeOverSocket(int source, int sequence) {
+        boolean firstInBatch;
+        synchronized (linkLock) {
+            firstInBatch = ackCount == 0;
+            if (ackSequence[source - 1] == 0)
+                ackSources[ackCount++] = source;
+            if (sequence > ackSequence[source - 1])
+                ackSequence[source - 1] = sequence;
         }
+        if (firstInBatch)
+            node.schedule(this::sendAcknowledgements, 0);
     }
 
-    public void run() {
-        floodingWithSequenceNumbers();
+    private void sendAcknowledgements() {
+        int[] sources;
+        int[] sequences;
+        synchronized (linkLock) {
+            sources = Arrays.copyOf(ackSources, ackCount);
+            sequences = new int[ackCount];
+            for (int i = 0; i < ackCount; i++) {
+                sequences[i] = ackSequence[sources[i] - 1];
+                ackSequence[sources[i] - 1] = 0;
+            }
+            ackCount = 0;
+        }
+        if (sources.length == 0)
+            return;
+        HashMap<String, Serializable> msgContent = new HashMap<>();
+        msgContent.put("Sources", sources);
+        msgContent.put("Sequences", sequences);
+        // a lost acknowledgement is recovered by the neighbor's retransmission, which is acknowledged again.
+        recordSend(node.send(new Message(TYPES.ACKNOWLEDGEMENT, msgContent), sendPort));
     }
 
+    /**
+     * stops listening, without waiting for the listening thread to end (see awaitClosed()).
+     * closing the server is enough to stop the listening thread wherever it is - if it's blocked in accept() the call
+     * throws, and otherwise it sees the closed server when it checks its loop condition (an accept() on a closed
+     * server throws immediately), so there's no need to wait for it to reach accept() first.
+     */
     public void close() {
-        interrupt();
+        if (server == null)
+            return;  // never initiated - there is nothing to close
+        for (MessageHandler messageHandler : messageHandlers)
+            messageHandler.close();
+        receiving = false;
+        try {
+            server.close();
+        } catch (IOException ignored) {}
+    }
+
+    /** waits until the listening thread ends after close() was called. */
+    public void awaitClosed() {
+        if (isAlive() && Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException ignored) {}
+        }
+    }
+
+    public boolean isInitiated() {
+        return initiated;
     }
 }
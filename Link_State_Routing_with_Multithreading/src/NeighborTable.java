@@ -0,0 +1,61 @@
+import java.util.Arrays;
+
+/**
+ * This class holds the information a node has about its own links, as read from the input file.
+ * The neighbors are stored in "slots" - every neighbor gets the next free slot when it is added, and all of its
+ * attributes are kept in parallel primitive arrays at that slot, so reading the weight of a link is an array access
+ * instead of a lookup in a map of boxed numbers.
+ * The slot of a neighbor is found with slotOf(), which is also an array access (indexed by the neighbor's id),
+ * and the node keeps its Neighbor objects in the same slots (see Node.neighbors).
+ */
+public class NeighborTable {
+
+    private int size;
+    private final int[] ids;
+    private final double[] weights;
+    private final int[] sendPorts;
+    private final int[] listenPorts;
+    private final int[] slots;  // indexed by (neighbor id - 1), -1 if the node isn't a neighbor
+
+    /**
+     * @param numOfNodes - the number of nodes in the network
+     * @param capacity - the maximal number of neighbors that will be added to the table
+     */
+    public NeighborTable(int numOfNodes, int capacity) {
+        this.size = 0;
+        this.ids = new int[capacity];
+        this.weights = new double[capacity];
+        this.sendPorts = new int[capacity];
+        this.listenPorts = new int[capacity];
+        this.slots = new int[numOfNodes];
+        Arrays.fill(this.slots, -1);
+    }
+
+    /** adds a neighbor to the next free slot of the table. */
+    public void add(int id, double weight, int sendPort, int listenPort) {
+        ids[size] = id;
+        weights[size] = weight;
+        sendPorts[size] = sendPort;
+        listenPorts[size] = listenPort;
+        slots[id - 1] = size;
+        size++;
+    }
+
+    /** returns the number of neighbors in the table. */
+    public int size() { return size; }
+
+    /** returns the slot of the neighbor with the given id, or -1 if it isn't a neighbor. */
+    public int slotOf(int id) { return slots[id - 1]; }
+
+    public boolean contains(int id) { return slots[id - 1] != -1; }
+
+    public int getId(int slot) { return ids[slot]; }
+
+    public double getWeight(int slot) { return weights[slot]; }
+
+    public void setWeight(int slot, double weight) { weights[slot] = weight; }
+
+    public int getSendPort(int slot) { return sendPorts[slot]; }
+
+    public int getListenPort(int slot) { return listenPorts[slot]; }
+}
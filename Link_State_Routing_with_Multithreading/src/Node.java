@@ -1,8 +1,14 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * A node in the network is used as a shared resource and as a synchronizer and manager of its own neighbors.
@@ -14,6 +20,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * this is important in order to avoid two threads trying to connect to the same socket at the same time, which causes
  * ConnectException because this is not a distributed system, it's my laptop... my poor poor laptop......
  * This is inter-node synchronization, so it doesn't affect the other nodes in the simulation.
+ * Link states are sent reliably through the neighbors (see Neighbor.transmit()), which retransmit them until they are
+ * acknowledged. The retransmission timers and the batched acknowledgements of all the node's links run on a single
+ * scheduler thread of the node.
+ * When the node runs over a Transport (like the Simulator), all of its link states and acknowledgements go through
+ * it instead of the node's sockets, and the node never starts listening.
+ * The node also keeps a forwarding table computed from its adjacencyMatrix (see getForwardingTable()). The table is
+ * rebuilt only when the matrix really changed since it was built, and it is rebuilt lazily by the first lookup that
+ * needs it, so rounds that don't change any weight cost nothing here, and lookups never take a lock.
  */
 public class Node implements Runnable {
 
@@ -23,43 +37,129 @@ public class Node implements Runnable {
     public int[] SequenceCounter;
     public volatile boolean establishedConnections;
     public double[][] adjacencyMatrix;
-    public HashMap<Integer, HashMap<String, Number>> neighborsInfo;
-    public HashMap<Integer, Neighbor> neighbors;
+    public NeighborTable neighborsInfo;
+    public Neighbor[] neighbors;  // in the same slots as in neighborsInfo
+    private final LinkStateRecord linkStates;
     private CountDownLatch finishRoundSignal;
     private final ReentrantLock sendLock;
+    private final ScheduledExecutorService scheduler;
+    private final Object updateMonitor;
+    public final LongAdder retransmissions;
+    public Transport transport;  // null when the node uses its own sockets
+    public Consumer<String> failureHandler;  // told when a link of the node is dead, null to only fail this node
+    private volatile String failure;  // why the node stopped waiting for its rounds, null while it didn't
+    private final AtomicLong databaseVersion;  // incremented whenever a weight in the adjacencyMatrix changes
+    private final AtomicInteger databaseRound;  // the newest round of a change in the adjacencyMatrix
+    private volatile ForwardingTable forwardingTable;
+    private final AtomicBoolean rebuildingTable;
 
     public Node(int nodeId,
                 int numOfNodes,
-                HashMap<Integer, HashMap<String, Number>> neighborsInfo) {
+                NeighborTable neighborsInfo) {
 
         this.nodeId = nodeId;
         this.numOfNodes = numOfNodes;
         this.neighborsInfo = neighborsInfo;
         sendLock = new ReentrantLock();
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "node-" + nodeId + "-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retransmissions = new LongAdder();
+        updateMonitor = new Object();
+        databaseVersion = new AtomicLong();
+        databaseRound = new AtomicInteger();
+        rebuildingTable = new AtomicBoolean();
         SequenceCounter = new int[numOfNodes];
         roundNumber = 0;
         establishedConnections = false;
+        linkStates = new LinkStateRecord(neighborsInfo.size());
         initiateNeighbors();
 
         adjacencyMatrix = new double[numOfNodes][numOfNodes];
-        double weight;
-        for (int id1 = 1; id1 <= this.numOfNodes; id1++) {
-            for (int id2 = 1; id2 <= this.numOfNodes; id2++) {
-                if (this.nodeId == id1 && neighborsInfo.containsKey(id2))
-                    weight = (Double) neighborsInfo.get(id2).get("weight");
-                else if (this.nodeId == id2 && neighborsInfo.containsKey(id1))
-                    weight = (Double) neighborsInfo.get(id1).get("weight");
-                else
-                    weight = -1.0;
-                adjacencyMatrix[id1 - 1][id2 - 1] = weight;
-            }
+        for (double[] row : adjacencyMatrix)
+            Arrays.fill(row, -1.0);
+        for (int slot = 0; slot < neighborsInfo.size(); slot++) {
+            int neighborId = neighborsInfo.getId(slot);
+            adjacencyMatrix[this.nodeId - 1][neighborId - 1] = neighborsInfo.getWeight(slot);
+            adjacencyMatrix[neighborId - 1][this.nodeId - 1] = neighborsInfo.getWeight(slot);
         }
+        // the first forwarding table is built by the first lookup (see getForwardingTable()), so that creating the
+        // nodes doesn't run Dijkstra on every one of them.
     }
 
     public void updateWeight(int neighborId, double newWeight) {
-        neighborsInfo.get(neighborId).put("weight", newWeight);
-        adjacencyMatrix[this.nodeId - 1][neighborId - 1] = newWeight;
-        adjacencyMatrix[neighborId - 1][this.nodeId - 1] = newWeight;
+        neighborsInfo.setWeight(neighborsInfo.slotOf(neighborId), newWeight);
+        if (adjacencyMatrix[this.nodeId - 1][neighborId - 1] != newWeight) {
+            adjacencyMatrix[this.nodeId - 1][neighborId - 1] = newWeight;
+            adjacencyMatrix[neighborId - 1][this.nodeId - 1] = newWeight;
+            databaseChanged(roundNumber + 1);  // the new weight is flooded in the next round
+        }
+    }
+
+    /**
+     * called after the SequenceCounter and adjacencyMatrix were loaded from a snapshot (see LinkStateSnapshot).
+     * the weights of the node's own links are taken from its row in the matrix, so that the next link state it
+     * broadcasts is consistent with the state it was restored to.
+     */
+    public void restoreState(int roundNumber) {
+        this.roundNumber = roundNumber;
+        for (int slot = 0; slot < neighborsInfo.size(); slot++)
+            neighborsInfo.setWeight(slot, adjacencyMatrix[this.nodeId - 1][neighborsInfo.getId(slot) - 1]);
+        databaseChanged(roundNumber);
+    }
+
+    /**
+     * called after weights in the adjacencyMatrix were changed (and only then), so that the next lookup in the
+     * forwarding table rebuilds it.
+     * @param round - the round of the link state the weights came from. the round is recorded before the version
+     * changes, so a table never claims a newer round than the weights it was built from.
+     */
+    public void databaseChanged(int round) {
+        databaseRound.accumulateAndGet(round, Math::max);
+        databaseVersion.incrementAndGet();
+    }
+
+    /**
+     * returns the node's forwarding table, rebuilding it first if the adjacencyMatrix changed since it was built.
+     * the rebuild isn't done in the background - the lookup that wins the race to rebuild the table runs the O(n^2)
+     * Dijkstra itself (see ForwardingTable.build()), inside that lookup call, so that lookup is as slow as a rebuild.
+     * only one thread rebuilds the table at a time - a lookup that finds another thread already rebuilding it
+     * doesn't wait, and uses the last published table instead. that table can be any number of changes behind, since
+     * the database can change many times while a single rebuild runs, so such a lookup can get a stale route.
+     * the version is read before the matrix, so a change that happens during the rebuild is never lost - the table is
+     * just marked with the older version, and the next lookup builds it again.
+     * before the first table is published there is no previous table to use, so a lookup that races the first
+     * rebuild builds a table of its own instead.
+     */
+    public ForwardingTable getForwardingTable() {
+        ForwardingTable table = forwardingTable;
+        long version = databaseVersion.get();
+        int round = databaseRound.get();
+        if (table != null && table.getVersion() == version)
+            return table;
+        if (rebuildingTable.compareAndSet(false, true)) {
+            try {
+                table = ForwardingTable.build(this, version, round);
+                forwardingTable = table;
+            } finally {
+                rebuildingTable.set(false);
+            }
+        }
+        else if (table == null)
+            table = ForwardingTable.build(this, version, round);
+        return table;
+    }
+
+    /** returns the id of the neighbor to forward to for reaching the given node, or ForwardingTable.UNREACHABLE. */
+    public int nextHop(int destination) {
+        return getForwardingTable().nextHop(destination);
+    }
+
+    /** returns the cost of the shortest path from this node to the given node. */
+    public double routeCost(int destination) {
+        return getForwardingTable().cost(destination);
     }
 
     public void print_graph() {
@@ -73,12 +173,12 @@ public class Node implements Runnable {
     }
 
     public void initiateNeighbors() {
-        neighbors = new HashMap<>();
-        for (int neighborID : neighborsInfo.keySet()) {
-            int listenPort = (Integer) neighborsInfo.get(neighborID).get("listen port");
-            int sendPort = (Integer) neighborsInfo.get(neighborID).get("send port");
-            Neighbor neighbor = new Neighbor(neighborID, listenPort, sendPort, this);
-            neighbors.put(neighborID, neighbor);
+        neighbors = new Neighbor[neighborsInfo.size()];
+        for (int slot = 0; slot < neighborsInfo.size(); slot++) {
+            neighbors[slot] = new Neighbor(neighborsInfo.getId(slot),
+                    neighborsInfo.getListenPort(slot),
+                    neighborsInfo.getSendPort(slot),
+                    this);
         }
     }
 
@@ -88,38 +188,86 @@ public class Node implements Runnable {
 
     public void startListening() {
         if (establishedConnections) return;
-        for (Neighbor neighbor : neighbors.values())
+        for (Neighbor neighbor : neighbors) {
+            neighbor.initiate();
             neighbor.start();
+        }
         establishedConnections = true;
     }
 
-    public void stopListening(CountDownLatch signal) {
-        for (Neighbor neighbor : neighbors.values())
+    public void stopListening() {
+        scheduler.shutdownNow();
+        for (Neighbor neighbor : neighbors)
             neighbor.close();
-        signal.countDown();
     }
 
-    private boolean isNodeFullyUpdated() {
+    /** waits until the listening threads of all the node's neighbors end, after stopListening() was called. */
+    public void awaitStopped() {
+        for (Neighbor neighbor : neighbors)
+            neighbor.awaitClosed();
+    }
+
+    public boolean isNodeFullyUpdated() {
         for (int i = 1; i < SequenceCounter.length; i++)
             if (SequenceCounter[i - 1] != SequenceCounter[i])
                 return false;
         return true;
     }
 
+    /** called by a MessageHandler after it applied a link state to the node, to wake up the waiting node. */
+    public void signalUpdated() {
+        synchronized (updateMonitor) {
+            updateMonitor.notifyAll();
+        }
+    }
+
     /**
-     * creates the node's link state, as defined in class.
-     * @return - a set in the form { [(u, v), w(u, v)] for u in N(v) } where v is this node
+     * called by a neighbor whose link is dead (see Neighbor), which means the rounds can't complete anymore.
+     * the failure is passed to the failureHandler, which usually fails all the nodes of the network together.
      */
-    public HashSet<Pair<Pair<Integer, Integer>, Double>> createLinkStates() {
-        HashSet<Pair<Pair<Integer, Integer>, Double>> linkStates = new HashSet<>();
-        for (int neighborId : neighborsInfo.keySet()) {
-            linkStates.add(
-                    new Pair<>(
-                            new Pair<>(nodeId, neighborId),
-                            (Double) neighborsInfo.get(neighborId).get("weight")
-                    )
-            );
+    public void linkFailed(String reason) {
+        if (failureHandler != null)
+            failureHandler.accept(reason);
+        else
+            fail(reason);
+    }
+
+    /** makes the node stop waiting for its rounds, because of the given reason (the first reason is kept). */
+    public void fail(String reason) {
+        synchronized (updateMonitor) {
+            if (failure == null)
+                failure = reason;
+            updateMonitor.notifyAll();
         }
+    }
+
+    /** returns why the node stopped waiting for its rounds, or null if it didn't (see fail()). */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * blocks until the node has the link states of all the nodes from the current round, or until it failed.
+     * the node waits instead of spinning, so that it doesn't take CPU time from the threads that deliver the link
+     * states and retransmit them (on a small machine these are the same cores).
+     */
+    public void awaitFullyUpdated() {
+        synchronized (updateMonitor) {
+            while (!isNodeFullyUpdated() && failure == null) {
+                try {
+                    updateMonitor.wait();
+                } catch (InterruptedException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * creates the node's link state, as defined in class.
+     * @return - the node's record of { [(v, u), w(v, u)] for u in N(v) } where v is this node, refilled with the
+     * current weights. the same record is returned every time (see LinkStateRecord).
+     */
+    public LinkStateRecord createLinkStates() {
+        linkStates.fill(neighborsInfo);
         return linkStates;
     }
 
@@ -133,28 +281,52 @@ public class Node implements Runnable {
     }
 
     private void broadcast(Message msg) {
-        for (Neighbor neighbor : neighbors.values())
-            send(msg, neighbor.sendPort);
+        for (Neighbor neighbor : neighbors)
+            neighbor.transmit(msg, nodeId, roundNumber);
     }
 
-    public void send(Message msg, int toPort) {
+    /**
+     * sends a single message to the given port.
+     * @return - true if the message was written to the connection, false if it failed and has to be sent again.
+     */
+    public boolean send(Message msg, int toPort) {
         sendLock.lock();
-        try (Socket connection = new Socket("localhost", toPort)) {
+        try (Socket connection = new Socket()) {
+            // the local port of this connection is taken from the same range as some of the ports the nodes listen
+            // on, and it stays in TIME_WAIT after the connection is closed - this lets a listener bind it anyway.
+            connection.setReuseAddress(true);
+            connection.connect(new InetSocketAddress("localhost", toPort));
+            connection.setTcpNoDelay(true);
             ObjectOutputStream output = new ObjectOutputStream(connection.getOutputStream());
             new ObjectInputStream((connection.getInputStream()));
             output.writeObject(msg);
             output.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
-        } catch (IOException ignored) {}
-        sendLock.unlock();
+    /** runs the given task on the node's scheduler thread after the given delay, unless the node stopped. */
+    public void schedule(Runnable task, long delayNanos) {
+        try {
+            scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ignored) {}
     }
 
-    @Override
-    public void run() {
+    /** starts the node's next round by broadcasting its link state to its neighbors. */
+    public void startRound() {
         roundNumber += 1;
         broadcast(getMessageToBroadcast());
         SequenceCounter[nodeId - 1] = roundNumber;
-        while (!isNodeFullyUpdated()) Thread.onSpinWait();
+    }
+
+    @Override
+    public void run() {
+        startRound();
+        awaitFullyUpdated();
         finishRoundSignal.countDown();
     }
 }
@@ -0,0 +1,86 @@
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the throughput of route lookups in the nodes' forwarding tables (see Node.nextHop()),
+ * while rounds keep running and changing the weights of the links - which is the case the tables were made for.
+ * The rounds run on the Simulator, so that the benchmark measures the lookups and not the sockets.
+ * args: [path to the input file] [number of lookup threads] [seconds]
+ * for example: java RouteLookupBenchmark Link_State_Routing_with_Multithreading/src/tests/input_5.txt 4 10
+ */
+public class RouteLookupBenchmark {
+
+    public static void main(String[] args) throws FileNotFoundException, InterruptedException {
+        String path = args.length > 0 ? args[0] : "Link_State_Routing_with_Multithreading/src/tests/input_5.txt";
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+        ExManager m = new ExManager(path);
+        m.read_txt();
+        m.useSimulator();
+        m.start();  // so that every node knows the whole graph before the first lookup
+        int numOfNodes = m.getNum_of_nodes();
+
+        List<int[]> edges = new ArrayList<>();
+        for (int id = 1; id <= numOfNodes; id++) {
+            NeighborTable table = m.getNode(id).neighborsInfo;
+            for (int slot = 0; slot < table.size(); slot++)
+                if (id < table.getId(slot))
+                    edges.add(new int[]{id, table.getId(slot)});
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        long[] lookups = new long[numThreads];
+        long[] checksums = new long[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                long checksum = 0;
+                while (running.get()) {
+                    // in batches, so that the flag isn't read on every lookup
+                    for (int i = 0; i < 1024; i++) {
+                        Node node = m.getNode(1 + random.nextInt(numOfNodes));
+                        checksum += node.nextHop(1 + random.nextInt(numOfNodes));
+                    }
+                    count += 1024;
+                }
+                lookups[index] = count;
+                checksums[index] = checksum;
+            }, "lookup-" + t);
+        }
+
+        long begin = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        // the rounds run on this thread: every round changes the weight of one random link first
+        int rounds = 0;
+        long end = begin + seconds * 1_000_000_000L;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+            int[] edge = edges.get(random.nextInt(edges.size()));
+            m.update_edge(edge[0], edge[1], 1 + random.nextInt(100));
+            m.start();
+            rounds++;
+        }
+        running.set(false);
+        for (Thread thread : threads)
+            thread.join();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+
+        long total = 0;
+        long checksum = 0;
+        for (int t = 0; t < numThreads; t++) {
+            total += lookups[t];
+            checksum += checksums[t];
+        }
+        System.out.printf("%d nodes, %d lookup threads, %d rounds in %.1f s%n", numOfNodes, numThreads, rounds, elapsed);
+        System.out.printf("%d lookups, %.0f lookups/s (checksum %d)%n", total, total / elapsed, checksum);
+        m.terminate();
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The ExManager's handle to a single worker JVM in the sharded mode (see ShardWorker for the worker side and the
+ * control protocol). It holds the worker process and the control connection to it.
+ * Every shard has its own thread that reads what the worker sends, and all of them put it in the same queue of the
+ * ExManager, so the ExManager waits for all the workers at once - a worker that crashed puts the end of its
+ * connection in the queue as well, and the ExManager sees it even while another worker is still busy with a round.
+ */
+public class Shard implements Closeable {
+
+    public final int index;
+    private final Process process;
+    private Socket control;
+    private BufferedReader input;
+    private PrintWriter output;
+    private volatile boolean disconnected;
+
+    /** a line that a worker sent, or the end of its control connection (a null line). */
+    public static final class Answer {
+        public final Shard shard;
+        public final String line;
+
+        Answer(Shard shard, String line) {
+            this.shard = shard;
+            this.line = line;
+        }
+    }
+
+    public Shard(int index, Process process) {
+        this.index = index;
+        this.process = process;
+    }
+
+    /**
+     * returns the shard that owns the node with the given id - the ids are split into numShards contiguous ranges
+     * of (almost) the same size.
+     */
+    public static int shardOf(int id, int numOfNodes, int numShards) {
+        return (int) ((long) (id - 1) * numShards / numOfNodes);
+    }
+
+    /**
+     * attaches the control connection of the worker, after it said hello, and starts reading it into the given queue.
+     */
+    public void connect(Socket control, BufferedReader input, BlockingQueue<Answer> answers) throws IOException {
+        this.control = control;
+        this.input = input;
+        this.output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(control.getOutputStream())), true);
+        Thread reader = new Thread(() -> read(answers), "shard-" + index + "-control");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read(BlockingQueue<Answer> answers) {
+        try {
+            String line;
+            while ((line = input.readLine()) != null)
+                answers.add(new Answer(this, line));
+        } catch (IOException ignored) {}
+        // the flag is set before the end is queued, so whoever consumed the end sees the flag (see isDisconnected()).
+        disconnected = true;
+        answers.add(new Answer(this, null));
+    }
+
+    public void send(String command) {
+        output.println(command);
+    }
+
+    /** returns true once the control connection ended - the worker won't send anything more. */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    /** describes why the control connection ended, for the exceptions of the ExManager. */
+    public String describeExit() {
+        return "shard " + index + " closed its control connection (exit code "
+                + (process.isAlive() ? "unknown" : process.exitValue()) + ")";
+    }
+
+    /** waits for the worker process to exit, and kills it if it doesn't. */
+    public void close() {
+        disconnected = true;
+        try {
+            if (control != null)
+                control.close();
+        } catch (IOException ignored) {}
+        try {
+            if (!process.waitFor(10, java.util.concurrent.TimeUnit.SECONDS))
+                process.destroyForcibly();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The entry point of a worker JVM in the sharded mode of the ExManager (see ExManager.useShards()).
+ * A worker creates only the nodes of its own shard (a contiguous range of node ids, see Shard.shardOf()),
+ * and is the Transport of all of them:
+ * a link between two nodes of the same shard is kept in memory - a link state sent over it is handed directly to a
+ * pool thread that runs MessageHandler.handle() at the other node, and doesn't need to be acknowledged,
+ * while a link to a node of another shard goes over the nodes' sockets, with the same reliable flooding
+ * (acknowledgements and retransmissions) as in the non-sharded mode. Only the neighbors of such links listen on
+ * their ports.
+ * The worker is controlled by the ExManager over a single local socket, with a small line-based protocol -
+ * the worker sends "HELLO shard" when it connects and "READY" when all of its listeners are bound, and then answers
+ * every command of the ExManager:
+ * START - runs a round on the shard's nodes, and answers "DONE retransmissions" when they are all fully updated,
+ * or "FAILED reason" if a link of one of them to another shard is dead (see Neighbor) or the round was aborted.
+ * A worker also sends "FAILED reason" on its own as soon as it finds such a dead link, even after it answered DONE -
+ * its own nodes can be fully updated while the nodes on the other side of the link still wait for their link states.
+ * The round runs on its own thread, so the worker keeps reading commands while it runs:
+ * ABORT reason - fails the round on all the nodes of the shard (see Node.fail()), so the running round answers
+ * FAILED instead of waiting for a worker that is gone. The ExManager sends it when another worker crashed or
+ * answered FAILED, so a dead link fails the round in every shard.
+ * UPDATE id1 id2 weight - updates the weight of the link on the endpoints that are in the shard, answers "OK".
+ * GRAPH id - answers with the n rows of the node's adjacencyMatrix, one line per row.
+ * STOP - stops all the nodes of the shard, answers "BYE" and exits.
+ */
+public class ShardWorker implements Transport {
+
+    private final ExManager manager;
+    private final int shard;
+    private final int numShards;
+    private final ExecutorService deliveries;
+    private final ExecutorService rounds;
+    private final PrintWriter output;  // to the ExManager
+
+    public ShardWorker(ExManager manager, int shard, int numShards, PrintWriter output) {
+        this.manager = manager;
+        this.shard = shard;
+        this.numShards = numShards;
+        this.output = output;
+        this.deliveries = Executors.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()),
+                task -> {
+                    Thread thread = new Thread(task, "shard-" + shard + "-delivery");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.rounds = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "shard-" + shard + "-round");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** args: path to the input file, shard index, number of shards, control port of the ExManager. */
+    public static void main(String[] args) throws IOException {
+        String path = args[0];
+        int shard = Integer.parseInt(args[1]);
+        int numShards = Integer.parseInt(args[2]);
+        int controlPort = Integer.parseInt(args[3]);
+        System.setOut(System.err);  // the ExManager's output is for the graphs only
+
+        try (Socket control = new Socket(InetAddress.getLoopbackAddress(), controlPort)) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(control.getInputStream()));
+            PrintWriter output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(control.getOutputStream())),
+                    true);
+            output.println("HELLO " + shard);
+
+            ExManager manager = new ExManager(path);
+            manager.readTopology(shard, numShards);
+            ShardWorker worker = new ShardWorker(manager, shard, numShards, output);
+            worker.startListening();
+            output.println("READY");
+
+            String command;
+            while ((command = input.readLine()) != null) {
+                String[] words = command.split(" ");
+                switch (words[0]) {
+                    case "START":
+                        worker.rounds.execute(() -> {
+                            String answer;
+                            try {
+                                answer = worker.runRound();
+                            } catch (RuntimeException e) {
+                                answer = "FAILED " + e;  // the ExManager waits for an answer either way
+                            }
+                            output.println(answer);
+                        });
+                        break;
+                    case "ABORT":
+                        worker.failRound(command.substring("ABORT ".length()));
+                        break;
+                    case "UPDATE":
+                        worker.updateEdge(Integer.parseInt(words[1]), Integer.parseInt(words[2]),
+                                Double.parseDouble(words[3]));
+                        output.println("OK");
+                        break;
+                    case "GRAPH":
+                        for (double[] row : manager.getNode(Integer.parseInt(words[1])).adjacencyMatrix) {
+                            StringBuilder line = new StringBuilder();
+                            for (double weight : row)
+                                line.append(weight).append(' ');
+                            output.println(line.toString().trim());
+                        }
+                        break;
+                    case "STOP":
+                        worker.stop();
+                        output.println("BYE");
+                        System.exit(0);
+                        return;
+                    default:
+                        throw new IllegalStateException("unknown command from the ExManager: " + command);
+                }
+            }
+        }
+        System.exit(1);  // the ExManager is gone
+    }
+
+    private boolean isLocal(int id) {
+        return Shard.shardOf(id, manager.getNum_of_nodes(), numShards) == shard;
+    }
+
+    /**
+     * makes the worker the transport of all its nodes, and starts listening on the links to other shards.
+     * the nodes are brought up in parallel, and READY is only sent after all of them are listening.
+     */
+    private void startListening() {
+        ExManager.inParallel(manager.getNum_of_nodes(), i -> {
+            if (!isLocal(i + 1))
+                return;
+            Node node = manager.getNode(i + 1);
+            node.transport = this;
+            node.failureHandler = this::linkFailed;
+            for (Neighbor neighbor : node.neighbors) {
+                if (!isLocal(neighbor.neighborID)) {
+                    neighbor.initiate();
+                    neighbor.start();
+                }
+            }
+        });
+    }
+
+    /**
+     * runs a round on the nodes of the shard - starts it on all of them, then waits until all of them are updated.
+     * @return - the answer to the ExManager: "DONE" and the number of retransmissions on the shard's links so far,
+     * or "FAILED" and the reason the round couldn't complete.
+     */
+    private String runRound() {
+        long retransmissions = 0;
+        for (int id = 1; id <= manager.getNum_of_nodes(); id++)
+            if (isLocal(id))
+                manager.getNode(id).startRound();
+        for (int id = 1; id <= manager.getNum_of_nodes(); id++) {
+            if (isLocal(id)) {
+                Node node = manager.getNode(id);
+                node.awaitFullyUpdated();
+                if (node.getFailure() != null)
+                    return "FAILED " + node.getFailure();
+                retransmissions += node.retransmissions.sum();
+            }
+        }
+        return "DONE " + retransmissions;
+    }
+
+    /** fails the round on the shard when a link of one of its nodes is dead, and tells the ExManager right away. */
+    private void linkFailed(String reason) {
+        failRound(reason);
+        output.println("FAILED " + reason);
+    }
+
+    /** stops all the nodes of the shard from waiting for the round. */
+    private void failRound(String reason) {
+        for (int id = 1; id <= manager.getNum_of_nodes(); id++)
+            if (isLocal(id))
+                manager.getNode(id).fail(reason);
+    }
+
+    private void updateEdge(int id1, int id2, double weight) {
+        if (isLocal(id1))
+            manager.getNode(id1).updateWeight(id2, weight);
+        if (isLocal(id2))
+            manager.getNode(id2).updateWeight(id1, weight);
+    }
+
+    private void stop() {
+        manager.terminate();
+        deliveries.shutdownNow();
+        rounds.shutdownNow();
+    }
+
+    @Override
+    public void transmit(Neighbor link, Message msg, int source, int sequence) {
+        if (!isLocal(link.neighborID)) {
+            link.transmitOverSocket(msg, source, sequence);
+            return;
+        }
+        Node receiver = manager.getNode(link.neighborID);
+        Neighbor receivingLink = receiver.neighbors[receiver.neighborsInfo.slotOf(link.node.nodeId)];
+        try {
+            deliveries.execute(() -> MessageHandler.handle(receiver, receivingLink, msg));
+        } catch (RejectedExecutionException ignored) {}  // the worker is stopping, and a late link state doesn't matter
+    }
+
+    @Override
+    public void acknowledge(Neighbor link, int source, int sequence) {
+        if (!isLocal(link.neighborID))
+            link.acknowledgeOverSocket(source, sequence);
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.*;
+
+/**
+ * A deterministic discrete-event simulation of the network, used instead of the nodes' threads and sockets.
+ * The simulator is the Transport of all the nodes: when a node transmits a link state over a link, the simulator
+ * schedules its delivery at (current time + delay of the link), and it runs a round by letting every node start it
+ * (in the order of their ids) and then delivering the scheduled messages one by one in the order of their time,
+ * each one with the same flooding logic the MessageHandlers use (MessageHandler.handle()), on a single thread.
+ * Messages that are scheduled for the same time are delivered in the order they were sent, so a round always
+ * produces the same timeline, no matter how the OS schedules anything.
+ * Links in the simulation are reliable, so acknowledgements aren't needed and are ignored.
+ * Time is measured in abstract units - every link has a delay of 1 unit unless it's configured otherwise with
+ * setLinkDelay() or randomizeLinkDelays(), and the delay of a link is the same in both directions.
+ * Note that the simulation removes the limit of threads and sockets, but every node still keeps a full
+ * n * n link-state database, so the memory needed grows like n^3 and so does the number of delivered messages
+ * (every link state crosses every link), which are the limits on the size of the network that can be simulated.
+ */
+public class Simulator implements Transport {
+
+    private final HashMap<Integer, Node> nodes;
+    private final int numOfNodes;
+    private final double[][] linkDelays;  // [node id - 1][slot of the neighbor in the node's NeighborTable]
+    private final double[] convergenceTimes;  // time of the last update of every node in the current round
+    private final PriorityQueue<Event> events;
+    private long nextEventId;
+    private long deliveredMessages;
+    private double now;
+
+    public Simulator(HashMap<Integer, Node> nodes, int numOfNodes) {
+        this.nodes = nodes;
+        this.numOfNodes = numOfNodes;
+        this.linkDelays = new double[numOfNodes][];
+        for (int id = 1; id <= numOfNodes; id++) {
+            linkDelays[id - 1] = new double[nodes.get(id).neighborsInfo.size()];
+            Arrays.fill(linkDelays[id - 1], 1.0);
+        }
+        this.convergenceTimes = new double[numOfNodes];
+        this.events = new PriorityQueue<>();
+        this.nextEventId = 0;
+        this.deliveredMessages = 0;
+        this.now = 0;
+    }
+
+    /** sets the delay of the link between the nodes with the given id's, in both directions. */
+    public void setLinkDelay(int id1, int id2, double delay) {
+        int slot1 = nodes.get(id1).neighborsInfo.slotOf(id2);
+        int slot2 = nodes.get(id2).neighborsInfo.slotOf(id1);
+        if (slot1 == -1 || slot2 == -1)
+            throw new IllegalArgumentException("there is no link between nodes " + id1 + " and " + id2);
+        linkDelays[id1 - 1][slot1] = delay;
+        linkDelays[id2 - 1][slot2] = delay;
+    }
+
+    /** gives every link a delay drawn uniformly from [minDelay, maxDelay), reproducibly for the same seed. */
+    public void randomizeLinkDelays(long seed, double minDelay, double maxDelay) {
+        Random random = new Random(seed);
+        for (int id = 1; id <= numOfNodes; id++) {
+            NeighborTable neighborsInfo = nodes.get(id).neighborsInfo;
+            for (int slot = 0; slot < neighborsInfo.size(); slot++) {
+                if (neighborsInfo.getId(slot) > id)
+                    setLinkDelay(id, neighborsInfo.getId(slot), minDelay + random.nextDouble() * (maxDelay - minDelay));
+            }
+        }
+    }
+
+    /** returns the current simulated time. */
+    public double getTime() { return now; }
+
+    /** returns the number of messages delivered since the simulator was created. */
+    public long getDeliveredMessages() { return deliveredMessages; }
+
+    /**
+     * returns the simulated time at which the node with the given id received the last link state it needed
+     * in the last round (or the start of the round, if it didn't need any).
+     */
+    public double getConvergenceTime(int id) { return convergenceTimes[id - 1]; }
+
+    /**
+     * runs a single round of the routing algorithm until no messages are left to deliver.
+     * @return - the simulated time it took for all the nodes to converge.
+     */
+    public double runRound() {
+        double roundStart = now;
+        Arrays.fill(convergenceTimes, roundStart);
+        for (int id = 1; id <= numOfNodes; id++)
+            nodes.get(id).startRound();
+
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            now = event.time;
+            Node node = event.link.node;
+            int source = event.source;
+            int sequenceBefore = node.SequenceCounter[source - 1];
+            MessageHandler.handle(node, event.link, event.msg);
+            if (node.SequenceCounter[source - 1] != sequenceBefore)
+                convergenceTimes[node.nodeId - 1] = now;
+            deliveredMessages++;
+        }
+
+        for (int id = 1; id <= numOfNodes; id++) {
+            if (!nodes.get(id).isNodeFullyUpdated())
+                throw new IllegalStateException("node " + id + " didn't receive all the link states of the round - "
+                        + "is the network connected?");
+        }
+        double roundEnd = roundStart;
+        for (double convergenceTime : convergenceTimes)
+            roundEnd = Math.max(roundEnd, convergenceTime);
+        return roundEnd - roundStart;
+    }
+
+    @Override
+    public void transmit(Neighbor link, Message msg, int source, int sequence) {
+        Node receiver = nodes.get(link.neighborID);
+        Neighbor receivingLink = receiver.neighbors[receiver.neighborsInfo.slotOf(link.node.nodeId)];
+        double delay = linkDelays[link.node.nodeId - 1][link.node.neighborsInfo.slotOf(link.neighborID)];
+        events.add(new Event(now + delay, nextEventId++, receivingLink, msg, source));
+    }
+
+    @Override
+    public void acknowledge(Neighbor link, int source, int sequence) {}
+}
+
+/** a message that will be delivered over a link (at the receiving node) at some point in simulated time. */
+class Event implements Comparable<Event> {
+    final double time;
+    final long id;  // breaks ties between events of the same time, in the order they were scheduled
+    final Neighbor link;
+    final Message msg;
+    final int source;
+
+    Event(double time, long id, Neighbor link, Message msg, int source) {
+        this.time = time;
+        this.id = id;
+        this.link = link;
+        this.msg = msg;
+        this.source = source;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+        if (time != other.time)
+            return Double.compare(time, other.time);
+        return Long.compare(id, other.id);
+    }
+}
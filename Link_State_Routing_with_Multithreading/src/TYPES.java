@@ -0,0 +1,2 @@
+/** The types of the messages the nodes send to each other (see Message). */
+enum TYPES {BROADCAST, ACKNOWLEDGEMENT}
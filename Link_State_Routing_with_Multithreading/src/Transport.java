@@ -0,0 +1,14 @@
+/**
+ * A way of moving messages over the links of the network, other than the nodes' own sockets.
+ * When a node has a transport (see Node.transport), its Neighbors hand every link state and every acknowledgement
+ * to the transport instead of sending them themselves, and the transport is responsible for delivering link states
+ * to the node at the other end of the link (using MessageHandler.handle(), so the flooding logic stays the same).
+ */
+public interface Transport {
+
+    /** sends a link state of the given source from the node of the link to the neighbor at its other end. */
+    void transmit(Neighbor link, Message msg, int source, int sequence);
+
+    /** acknowledges a link state of the given source that arrived at the node of the link. */
+    void acknowledge(Neighbor link, int source, int sequence);
+}